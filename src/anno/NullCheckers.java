@@ -0,0 +1,433 @@
+package anno;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedArrayType;
+import java.lang.reflect.AnnotatedParameterizedType;
+import java.lang.reflect.AnnotatedType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * This example generates null checker class for every distinct nullability signature of member type.
+ * Signature uses the name convention of {@link TypeAnnotations} (l = List, a = array, n = Nullable, s = String or any other leaf),
+ * e.g. {@code @Nullable1 String @NullableC []} has signature {@code nans}.
+ * All members with the same signature share one generated class.
+ * <p>
+ * The generated {@code check} method is straight-line code with one plain loop per array or List level,
+ * so it is not slower than hand-written loop. Classes are defined with class file version 49
+ * (no stack map frames are needed) in class loader private to this class.
+ */
+
+public class NullCheckers {
+
+	public interface NullChecker {
+		/**
+		 * @throws NullPointerException when null is found on level which is not nullable
+		 */
+		void check(Object value);
+	}
+
+	private static final Map<String,NullChecker> checkers = new ConcurrentHashMap<>();
+
+	private static final Loader loader = new Loader(NullChecker.class.getClassLoader());
+
+	private static class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+
+	static NullChecker checker(AnnotatedType type) {
+		return checker(signature(type));
+	}
+
+	static NullChecker checker(String signature) {
+		return checkers.computeIfAbsent(signature, s -> {
+			try {
+				String name = NullCheckers.class.getName() + "$" + s;
+				return (NullChecker)loader.define(name, generate(name.replace('.', '/'), s)).newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * @return signature of type, levels are walked by {@link TypeAnnotations#component(AnnotatedType)}
+	 */
+	static String signature(AnnotatedType type) {
+		StringBuilder result = new StringBuilder();
+		for (AnnotatedType level = type; ; level = TypeAnnotations.component(level)) {
+			if (Stream.of(level.getAnnotations()).map(Annotation::annotationType).anyMatch(a -> a.getSimpleName().startsWith("Nullable"))) {
+				result.append('n');
+			}
+			if (level instanceof AnnotatedArrayType && !isPrimitive(((AnnotatedArrayType)level).getAnnotatedGenericComponentType())) {
+				result.append('a');
+			} else if (level instanceof AnnotatedParameterizedType && isList((AnnotatedParameterizedType)level)) {
+				result.append('l');
+			} else {
+				return result.append('s').toString();
+			}
+		}
+	}
+
+	private static boolean isPrimitive(AnnotatedType type) {
+		return type.getType() instanceof Class && ((Class<?>)type.getType()).isPrimitive();
+	}
+
+	private static boolean isList(AnnotatedParameterizedType type) {
+		return List.class.isAssignableFrom((Class<?>)((ParameterizedType)type.getType()).getRawType())
+				&& type.getAnnotatedActualTypeArguments().length == 1;
+	}
+
+	// class file generation (JVMS chapter 4)
+
+	static byte[] generate(String className, String signature) throws IOException {
+		List<Character> kinds = new ArrayList<>();
+		List<Boolean> nullables = new ArrayList<>();
+		for (int i = 0; i < signature.length(); i++) {
+			boolean nullable = signature.charAt(i) == 'n';
+			nullables.add(nullable);
+			kinds.add(signature.charAt(nullable ? ++i : i));
+		}
+		if (2 + 4 * kinds.size() > 0xFFFF) {
+			throw new IllegalArgumentException("signature too deep: " + signature);
+		}
+		ConstantPool cp = new ConstantPool();
+		int thisClass = cp.classRef(className);
+		int superClass = cp.classRef("java/lang/Object");
+		int checkerInterface = cp.classRef(NullChecker.class.getName().replace('.', '/'));
+		int objectInit = cp.methodRef(false, "java/lang/Object", "<init>", "()V");
+		int codeName = cp.utf8("Code");
+
+		Code init = new Code();
+		init.op(0x2A); // aload_0
+		init.op(0xB7).u2(objectInit); // invokespecial
+		init.op(0xB1); // return
+
+		Code check = new Code();
+		check.level(cp, signature, kinds, nullables, 0, 1);
+		check.op(0xB1); // return
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		int initName = cp.utf8("<init>"), initDescriptor = cp.utf8("()V");
+		int checkName = cp.utf8("check"), checkDescriptor = cp.utf8("(Ljava/lang/Object;)V");
+		cp.write(out);
+		out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(checkerInterface);
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		method(out, initName, initDescriptor, codeName, init, 1, 1);
+		method(out, checkName, checkDescriptor, codeName, check, 3, 2 + 4 * kinds.size());
+		out.writeShort(0); // class attributes
+		return bytes.toByteArray();
+	}
+
+	private static void method(DataOutputStream out, int name, int descriptor, int codeName, Code code, int maxStack, int maxLocals) throws IOException {
+		out.writeShort(0x0001); // public
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code.bytes, 0, code.length);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // code attributes
+	}
+
+	private static class Code {
+		byte[] bytes = new byte[64];
+		int length;
+
+		Code op(int b) {
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, 2 * length);
+			}
+			bytes[length++] = (byte)b;
+			return this;
+		}
+
+		Code u2(int value) {
+			return op(value >> 8).op(value);
+		}
+
+		/** Emits branch instruction with offset to be patched, returns position of instruction. */
+		int branch(int opcode) {
+			int result = length;
+			op(opcode).u2(0);
+			return result;
+		}
+
+		void patch(int branch, int target) {
+			int offset = target - branch;
+			if (offset != (short)offset) {
+				throw new IllegalArgumentException("branch offset out of range, signature too deep");
+			}
+			bytes[branch + 1] = (byte)(offset >> 8);
+			bytes[branch + 2] = (byte)offset;
+		}
+
+		/** Emits instruction with local variable index, using wide form for index above 255. */
+		void local(int opcode, int index) {
+			if (index > 0xFF) {
+				op(0xC4).op(opcode).u2(index); // wide
+			} else {
+				op(opcode).op(index);
+			}
+		}
+
+		void increment(int index) {
+			if (index > 0xFF) {
+				op(0xC4).op(0x84).u2(index).u2(1); // wide iinc
+			} else {
+				op(0x84).op(index).op(1); // iinc
+			}
+		}
+
+		/**
+		 * Emits check of value in local variable {@code value} on given level and recursively of its elements.
+		 * Every container level uses up to 4 locals from {@code 2 + 4 * level}: container (or iterator), size, index, element.
+		 */
+		void level(ConstantPool cp, String signature, List<Character> kinds, List<Boolean> nullables, int level, int value) {
+			if (!nullables.subList(level, nullables.size()).contains(false)) {
+				return; // everything is nullable from here, nothing to check
+			}
+			local(0x19, value); // aload
+			int skip;
+			if (nullables.get(level)) {
+				skip = branch(0xC6); // ifnull, null is allowed and there is nothing inside
+			} else {
+				int ok = branch(0xC7); // ifnonnull
+				op(0xBB).u2(cp.classRef("java/lang/NullPointerException")); // new
+				op(0x59); // dup
+				op(0x13).u2(cp.string(signature + ": null at level " + level)); // ldc_w
+				op(0xB7).u2(cp.methodRef(false, "java/lang/NullPointerException", "<init>", "(Ljava/lang/String;)V"));
+				op(0xBF); // athrow
+				patch(ok, length);
+				skip = -1;
+			}
+			if (kinds.get(level) == 'a' && nullables.subList(level + 1, nullables.size()).contains(false)) {
+				int container = 2 + 4 * level, size = container + 1, index = container + 2, element = container + 3;
+				local(0x19, value); // aload
+				op(0xC0).u2(cp.classRef("[Ljava/lang/Object;")); // checkcast
+				local(0x3A, container); // astore
+				local(0x19, container);
+				op(0xBE); // arraylength
+				local(0x36, size); // istore
+				op(0x03); // iconst_0
+				local(0x36, index);
+				int loop = length;
+				local(0x15, index); // iload
+				local(0x15, size);
+				int exit = branch(0xA2); // if_icmpge
+				local(0x19, container);
+				local(0x15, index);
+				op(0x32); // aaload
+				local(0x3A, element);
+				level(cp, signature, kinds, nullables, level + 1, element);
+				increment(index);
+				patch(branch(0xA7), loop); // goto
+				patch(exit, length);
+			} else if (kinds.get(level) == 'l' && nullables.subList(level + 1, nullables.size()).contains(false)) {
+				// iterator rather than get(i), which would be quadratic on LinkedList
+				int iterator = 2 + 4 * level, element = iterator + 3;
+				local(0x19, value); // aload
+				op(0xC0).u2(cp.classRef("java/util/List")); // checkcast
+				op(0xB9).u2(cp.methodRef(true, "java/util/List", "iterator", "()Ljava/util/Iterator;")).op(1).op(0); // invokeinterface
+				local(0x3A, iterator); // astore
+				int loop = length;
+				local(0x19, iterator);
+				op(0xB9).u2(cp.methodRef(true, "java/util/Iterator", "hasNext", "()Z")).op(1).op(0);
+				int exit = branch(0x99); // ifeq
+				local(0x19, iterator);
+				op(0xB9).u2(cp.methodRef(true, "java/util/Iterator", "next", "()Ljava/lang/Object;")).op(1).op(0);
+				local(0x3A, element);
+				level(cp, signature, kinds, nullables, level + 1, element);
+				patch(branch(0xA7), loop); // goto
+				patch(exit, length);
+			}
+			if (skip != -1) {
+				patch(skip, length);
+			}
+		}
+	}
+
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String,Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String value) {
+			return entry("1:" + value, () -> { out.writeByte(1); out.writeUTF(value); });
+		}
+
+		int classRef(String internalName) {
+			int name = utf8(internalName);
+			return entry("7:" + internalName, () -> { out.writeByte(7); out.writeShort(name); });
+		}
+
+		int string(String value) {
+			int utf8 = utf8(value);
+			return entry("8:" + value, () -> { out.writeByte(8); out.writeShort(utf8); });
+		}
+
+		int methodRef(boolean isInterface, String owner, String name, String descriptor) {
+			int ownerClass = classRef(owner);
+			int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+			int nameAndType = entry("12:" + name + descriptor, () -> { out.writeByte(12); out.writeShort(nameIndex); out.writeShort(descriptorIndex); });
+			int tag = isInterface ? 11 : 10;
+			return entry(tag + ":" + owner + "." + name + descriptor, () -> { out.writeByte(tag); out.writeShort(ownerClass); out.writeShort(nameAndType); });
+		}
+
+		private interface Writer {
+			void write() throws IOException;
+		}
+
+		private int entry(String key, Writer writer) {
+			Integer result = entries.get(key);
+			if (result == null) {
+				try {
+					writer.write();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				result = count++;
+				entries.put(key, result);
+			}
+			return result;
+		}
+
+		void write(DataOutputStream target) throws IOException {
+			target.writeShort(count);
+			bytes.writeTo(target);
+		}
+	}
+
+	// demo
+
+	static String[][] matrix = new String[1000][1000];
+	static {
+		for (String[] row : matrix) {
+			Arrays.fill(row, "x");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (Field field : TypeAnnotations.class.getDeclaredFields()) {
+			System.out.println(field.getName() + " -> " + checker(field.getAnnotatedType()).getClass().getName());
+		}
+		Method m = TypeAnnotations.m;
+		for (int i = 0; i < m.getParameterCount(); i++) {
+			System.out.println("m." + m.getParameters()[i].getName() + " -> " + checker(m.getAnnotatedParameterTypes()[i]).getClass().getName());
+		}
+
+		System.out.println("----------------------------------------------------");
+		check("nlns", null);
+		check("nlns", Arrays.asList("a", null));
+		check("lns", null);
+		check("nls", Arrays.asList("a", null));
+		check("nanans", new String[][] {null, {null}});
+		check("aas", new String[][] {{"a"}, {"b", null}});
+
+		System.out.println("----------------------------------------------------");
+		NullChecker aas = checker("aas");
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 100; i++) {
+				aas.check(matrix);
+			}
+			long generated = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < 100; i++) {
+				handWritten(matrix);
+			}
+			long handWritten = System.nanoTime() - start;
+			System.out.println("String[][] 1000x1000 x 100: generated " + generated / 1_000_000 + " ms, hand-written " + handWritten / 1_000_000 + " ms");
+		}
+	}
+
+	static void check(String signature, Object value) {
+		try {
+			checker(signature).check(value);
+			System.out.println(signature + " ok");
+		} catch (NullPointerException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	static void handWritten(String[][] value) {
+		if (value == null) throw new NullPointerException();
+		for (String[] row : value) {
+			if (row == null) throw new NullPointerException();
+			for (String s : row) {
+				if (s == null) throw new NullPointerException();
+			}
+		}
+	}
+
+}
+
+/* OUTPUT:
+
+ls -> anno.NullCheckers$ls
+as -> anno.NullCheckers$as
+lns -> anno.NullCheckers$lns
+ans -> anno.NullCheckers$ans
+nls -> anno.NullCheckers$nls
+nas -> anno.NullCheckers$nas
+nlns -> anno.NullCheckers$nlns
+nans -> anno.NullCheckers$nans
+nlnlns -> anno.NullCheckers$nlnlns
+nanans -> anno.NullCheckers$nanans
+m -> anno.NullCheckers$s
+m.lns -> anno.NullCheckers$lns
+m.ans -> anno.NullCheckers$ans
+m.nls -> anno.NullCheckers$nls
+m.nas -> anno.NullCheckers$nas
+m.nlns -> anno.NullCheckers$nlns
+m.nans -> anno.NullCheckers$nans
+m.nlnlns -> anno.NullCheckers$nlnlns
+m.nanans -> anno.NullCheckers$nanans
+----------------------------------------------------
+nlns ok
+nlns ok
+lns: null at level 0
+nls: null at level 1
+nanans ok
+aas: null at level 2
+----------------------------------------------------
+String[][] 1000x1000 x 100: generated 82 ms, hand-written 64 ms
+String[][] 1000x1000 x 100: generated 38 ms, hand-written 38 ms
+String[][] 1000x1000 x 100: generated 42 ms, hand-written 44 ms
+String[][] 1000x1000 x 100: generated 44 ms, hand-written 44 ms
+String[][] 1000x1000 x 100: generated 44 ms, hand-written 41 ms
+
+*/
@@ -0,0 +1,312 @@
+package anno;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This example compares per-level nullability of members between two versions of compiled classes
+ * (e.g. a library before and after upgrade).
+ * Class files are parsed directly (no class loading), each side is read in parallel
+ * and both sides are hash-joined by member signature.
+ * Only levels whose nullability changed are reported.
+ * <p>
+ * Level is identified by type path of type annotation (JVMS 4.7.20.2), rendered step by step:
+ * {@code []} = element of array, {@code <i>} = i-th type argument, {@code ?} = bound of wildcard, {@code .} = nested type;
+ * the member type itself has empty path, shown as {@code (type)}.
+ * Hence {@code @Nullable1 String @NullableC []} is nullable on levels {@code (type)} and {@code []},
+ * {@code @NullableC List<@Nullable1 String>} on {@code (type)} and {@code <0>},
+ * and annotations on key and value of {@code Map} are distinct levels {@code <0>} and {@code <1>}.
+ * Any annotation whose simple name starts with {@code Nullable} makes the level nullable.
+ */
+
+public class NullabilityDiff {
+
+	// Usage: NullabilityDiff <old classes dir or jar> <new classes dir or jar>
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("usage: java anno.NullabilityDiff <old dir|jar> <new dir|jar>");
+			return;
+		}
+		long start = System.nanoTime();
+		CompletableFuture<Map<String,Set<String>>> oldFuture = CompletableFuture.supplyAsync(() -> readUnchecked(Paths.get(args[0])));
+		Map<String,Set<String>> newSide = read(Paths.get(args[1]));
+		Map<String,Set<String>> oldSide;
+		try {
+			oldSide = oldFuture.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException)e.getCause()).getCause() : e;
+		}
+		List<String> changes = diff(oldSide, newSide);
+		changes.forEach(System.out::println);
+		System.out.println(changes.size() + " change(s) in " + oldSide.size() + "/" + newSide.size() + " members, "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Joins both sides by member signature and describes levels which changed.
+	 * Members present only on one side are not reported.
+	 * Parameters are recorded only when annotated, so missing parameter of method present on both sides
+	 * stands for parameter without nullable levels.
+	 */
+	static List<String> diff(Map<String,Set<String>> oldSide, Map<String,Set<String>> newSide) {
+		return Stream.concat(oldSide.keySet().stream(), newSide.keySet().stream().filter(key -> !oldSide.containsKey(key)))
+				.parallel()
+				.filter(key -> oldSide.containsKey(owner(key)) && newSide.containsKey(owner(key)))
+				.flatMap(key -> {
+					Set<String> oldLevels = oldSide.getOrDefault(key, Collections.emptySet());
+					Set<String> newLevels = newSide.getOrDefault(key, Collections.emptySet());
+					Stream<String> tightened = oldLevels.stream().filter(level -> !newLevels.contains(level))
+							.map(level -> key + " " + display(level) + " tightened (nullable -> non-null)");
+					Stream<String> loosened = newLevels.stream().filter(level -> !oldLevels.contains(level))
+							.map(level -> key + " " + display(level) + " loosened (non-null -> nullable)");
+					return Stream.concat(tightened, loosened);
+				})
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return key of method return type for parameter key, the key itself otherwise
+	 */
+	static String owner(String key) {
+		int separator = key.lastIndexOf('#');
+		return key.indexOf('(') != -1 && !key.endsWith("#return") ? key.substring(0, separator) + "#return" : key;
+	}
+
+	static String display(String level) {
+		return level.isEmpty() ? "(type)" : level;
+	}
+
+	/**
+	 * Reads all classes from directory or jar in parallel.
+	 * @return member signature -> type paths of nullable levels
+	 */
+	static Map<String,Set<String>> read(Path root) throws IOException {
+		if (Files.isDirectory(root)) {
+			List<Path> classFiles;
+			try (Stream<Path> paths = Files.walk(root)) {
+				classFiles = paths.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList());
+			}
+			return classFiles.parallelStream()
+					.flatMap(p -> {
+						try {
+							return members(Files.readAllBytes(p)).entrySet().stream();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					})
+					.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, NullabilityDiff::union));
+		}
+		try (ZipFile zip = new ZipFile(root.toFile())) {
+			List<ZipEntry> classEntries = zip.stream().filter(e -> e.getName().endsWith(".class")).collect(Collectors.toList());
+			return classEntries.parallelStream()
+					.flatMap(e -> {
+						try (InputStream in = zip.getInputStream(e)) {
+							return members(readAll(in)).entrySet().stream();
+						} catch (IOException ex) {
+							throw new UncheckedIOException(ex);
+						}
+					})
+					.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, NullabilityDiff::union));
+		}
+	}
+
+	static Map<String,Set<String>> readUnchecked(Path root) {
+		try {
+			return read(root);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static Set<String> union(Set<String> a, Set<String> b) {
+		Set<String> result = new HashSet<>(a);
+		result.addAll(b);
+		return result;
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) != -1; ) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	// class file parsing (JVMS chapter 4), only what is needed for type annotations of fields and methods
+
+	/**
+	 * @return member signature -> type paths of nullable levels, for every field and method return type
+	 * (members without annotations have empty set so that removal of annotation is detected)
+	 * and for every annotated method parameter.
+	 * Parameter is keyed by {@code formal_parameter_index}, i.e. by its position among parameters declared in source;
+	 * synthetic and mandated parameters (e.g. outer instance of inner class constructor) are not counted,
+	 * so the index may differ from position in method descriptor.
+	 */
+	static Map<String,Set<String>> members(byte[] classFile) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (in.readInt() != 0xCAFEBABE) {
+			return Collections.emptyMap();
+		}
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+		String[] utf8 = constantPool(in);
+		in.readUnsignedShort(); // access flags
+		String className = utf8[in.readUnsignedShort()];
+		in.readUnsignedShort(); // super class
+		in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+		Map<String,Set<String>> result = new HashMap<>();
+		for (int i = 0, n = in.readUnsignedShort(); i < n; i++) { // fields
+			in.readUnsignedShort();
+			String key = className + "#" + utf8[in.readUnsignedShort()];
+			in.readUnsignedShort(); // descriptor
+			result.put(key, new HashSet<>());
+			memberAttributes(in, utf8, key, result);
+		}
+		for (int i = 0, n = in.readUnsignedShort(); i < n; i++) { // methods
+			in.readUnsignedShort();
+			String name = utf8[in.readUnsignedShort()];
+			String descriptor = utf8[in.readUnsignedShort()];
+			String key = className + "#" + name + descriptor;
+			result.put(key + "#return", new HashSet<>());
+			memberAttributes(in, utf8, key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return strings of CONSTANT_Utf8 entries, CONSTANT_Class entries are resolved to their names, other entries are null
+	 */
+	static String[] constantPool(DataInputStream in) throws IOException {
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classNameIndex = new int[count];
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1: utf8[i] = in.readUTF(); break;
+				case 7: classNameIndex[i] = in.readUnsignedShort(); break;
+				case 8: case 16: case 19: case 20: in.skipBytes(2); break;
+				case 15: in.skipBytes(3); break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+				case 5: case 6: in.skipBytes(8); i++; break; // long and double take two slots
+				default: throw new IOException("unknown constant pool tag " + tag);
+			}
+		}
+		for (int i = 1; i < count; i++) {
+			if (classNameIndex[i] != 0) {
+				utf8[i] = utf8[classNameIndex[i]];
+			}
+		}
+		return utf8;
+	}
+
+	static void memberAttributes(DataInputStream in, String[] utf8, String key, Map<String,Set<String>> result) throws IOException {
+		for (int i = 0, n = in.readUnsignedShort(); i < n; i++) {
+			String name = utf8[in.readUnsignedShort()];
+			int length = in.readInt();
+			if (!"RuntimeVisibleTypeAnnotations".equals(name) && !"RuntimeInvisibleTypeAnnotations".equals(name)) {
+				in.skipBytes(length);
+				continue;
+			}
+			for (int a = 0, an = in.readUnsignedShort(); a < an; a++) {
+				String target = target(in, key);
+				String level = typePath(in);
+				String annotationType = utf8[in.readUnsignedShort()];
+				skipElementValuePairs(in);
+				if (target != null && isNullable(annotationType)) {
+					result.computeIfAbsent(target, t -> new HashSet<>()).add(level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads target_info.
+	 * @return member signature the annotation belongs to, or null for targets which are not tracked (type parameters, throws etc.)
+	 */
+	static String target(DataInputStream in, String key) throws IOException {
+		int targetType = in.readUnsignedByte();
+		switch (targetType) {
+			case 0x13: return key; // field
+			case 0x14: return key + "#return";
+			case 0x16: return key + "#" + in.readUnsignedByte(); // formal parameter
+			case 0x15: return null; // receiver
+			case 0x00: case 0x01: in.skipBytes(1); return null; // type parameter
+			case 0x10: case 0x17: in.skipBytes(2); return null; // supertype, throws
+			case 0x11: case 0x12: in.skipBytes(2); return null; // type parameter bound
+			default: throw new IOException("unexpected type annotation target " + targetType + " on " + key);
+		}
+	}
+
+	/**
+	 * Reads type_path.
+	 * @return path rendered as {@code []} (array element), {@code .} (nested type), {@code ?} (wildcard bound) or {@code <i>} (type argument) for each step
+	 */
+	static String typePath(DataInputStream in) throws IOException {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0, n = in.readUnsignedByte(); i < n; i++) {
+			int kind = in.readUnsignedByte();
+			int argumentIndex = in.readUnsignedByte();
+			switch (kind) {
+				case 0: result.append("[]"); break;
+				case 1: result.append('.'); break;
+				case 2: result.append('?'); break;
+				case 3: result.append('<').append(argumentIndex).append('>'); break;
+				default: throw new IOException("unknown type path kind " + kind);
+			}
+		}
+		return result.toString();
+	}
+
+	static void skipElementValuePairs(DataInputStream in) throws IOException {
+		for (int i = 0, n = in.readUnsignedShort(); i < n; i++) {
+			in.skipBytes(2); // element name
+			skipElementValue(in);
+		}
+	}
+
+	static void skipElementValue(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+			case 'e': in.skipBytes(4); break;
+			case '@': in.skipBytes(2); skipElementValuePairs(in); break;
+			case '[': for (int i = 0, n = in.readUnsignedShort(); i < n; i++) skipElementValue(in); break;
+			default: in.skipBytes(2); break; // primitive, String or Class
+		}
+	}
+
+	static boolean isNullable(String annotationDescriptor) {
+		String simpleName = annotationDescriptor.substring(Math.max(annotationDescriptor.lastIndexOf('/'), annotationDescriptor.lastIndexOf('$')) + 1);
+		return simpleName.startsWith("Nullable");
+	}
+
+}
+
+/* OUTPUT (old = bin with src/anno compiled, new = the same with "@Nullable1 String @NullableC [] nans" changed to "String @NullableC [] nans"):
+
+anno/TypeAnnotations#nans [] tightened (nullable -> non-null)
+1 change(s) in 211/211 members, 179 ms
+
+*/
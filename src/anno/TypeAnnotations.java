@@ -181,6 +181,20 @@ public class TypeAnnotations {
 		return result;
 	}
 	
+	/**
+	 * @return array component or the only type argument of collection, null for the deepest level
+	 */
+	static AnnotatedType component(AnnotatedType type) {
+		if (type instanceof AnnotatedArrayType) {
+			return ((AnnotatedArrayType)type).getAnnotatedGenericComponentType();
+		}
+		if (type instanceof AnnotatedParameterizedType) {
+			AnnotatedType[] arguments = ((AnnotatedParameterizedType)type).getAnnotatedActualTypeArguments();
+			return arguments.length == 1 ? arguments[0] : null;
+		}
+		return null;
+	}
+
 	static String anno(AnnotatedType type) {
 		return type.getAnnotations().length == 0 ? "annotationless" : type.getAnnotations()[0].annotationType().getSimpleName();
 	}
@@ -0,0 +1,410 @@
+package anno;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * This example stores the per-member model resolved from type annotations
+ * (the same information {@link TypeAnnotations#testFields()} and {@link TypeAnnotations#testParameters()} print)
+ * into a binary snapshot, so that next JVM start can restore it instead of resolving it by reflection again.
+ * <p>
+ * Snapshot is read by single bulk read into heap. It is deliberately not memory-mapped: the CRC check reads every page anyway
+ * and a mapping would stay open until GC, which on Windows makes replacing the file in {@link #save(Path)} fail.
+ * The classpath fingerprint is checked eagerly (mismatch discards whole snapshot),
+ * the fingerprint of particular class (CRC of its class file) is checked lazily on first request of that class.
+ * Reflection runs only for classes which are not in snapshot or whose fingerprint changed.
+ * <p>
+ * File format (big endian):
+ * <pre>
+ * int magic, int version, long classpath fingerprint, int body length, long body CRC,
+ * body = int annotation count, (short length, UTF-8 bytes) annotation type name...,
+ *        int class count, (class name, long class fingerprint, int model length, model bytes)...
+ * model = int member count, (member name, short level count, (short id count, int annotation id...)...)...
+ * </pre>
+ */
+
+public class TypeAnnotationsSnapshot {
+
+	static final int MAGIC = 0x54415353; // "TASS"
+	static final int VERSION = 2;
+	static final int HEADER_LENGTH = 28;
+
+	/**
+	 * Resolved member (field or method parameter).
+	 * Level 0 is the member type itself, level 1 is element of array or type argument of collection etc.
+	 */
+	static class Member {
+		final int index; // position of member in class (fields first, then parameters of methods)
+		final String name; // field name or method.parameter
+		final int[][] levels; // annotation ids for each level
+
+		Member(int index, String name, int[][] levels) {
+			this.index = index;
+			this.name = name;
+			this.levels = levels;
+		}
+	}
+
+	private static class Entry {
+		final long fingerprint;
+		final ByteBuffer model; // exactly the model bytes of the class
+
+		Entry(long fingerprint, ByteBuffer model) {
+			this.fingerprint = fingerprint;
+			this.model = model;
+		}
+	}
+
+	private final List<String> annotations = new ArrayList<>();
+	private final Map<String,Integer> annotationIds = new HashMap<>();
+	private final Map<String,Entry> index = new ConcurrentHashMap<>();
+	private final Map<Class<?>,List<Member>> resolved = new ConcurrentHashMap<>();
+	private final Map<Class<?>,Long> fingerprints = new ConcurrentHashMap<>();
+	private volatile boolean dirty;
+
+	TypeAnnotationsSnapshot() {
+	}
+
+	/**
+	 * Builds index of snapshot body. Entries keep slices of given buffer, models themselves are decoded lazily.
+	 */
+	private void index(ByteBuffer body) {
+		Map<String,Entry> entries = new HashMap<>();
+		for (int i = 0, n = body.getInt(); i < n; i++) {
+			annotationId(string(body));
+		}
+		for (int i = 0, n = body.getInt(); i < n; i++) {
+			String className = string(body);
+			long fingerprint = body.getLong();
+			int length = body.getInt();
+			ByteBuffer model = body.slice();
+			model.limit(length);
+			entries.put(className, new Entry(fingerprint, model));
+			body.position(body.position() + length);
+		}
+		index.putAll(entries);
+	}
+
+	/**
+	 * Restores snapshot from file. Missing, incompatible, outdated, truncated or corrupted file results in empty snapshot.
+	 */
+	static TypeAnnotationsSnapshot restore(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return new TypeAnnotationsSnapshot();
+		}
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return new TypeAnnotationsSnapshot();
+			}
+			buffer = ByteBuffer.allocate((int)channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// single bulk read, loops only if channel returns less than requested
+			}
+			buffer.flip();
+		}
+		if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != classpathFingerprint()) {
+			return new TypeAnnotationsSnapshot();
+		}
+		int length = buffer.getInt();
+		long crc = buffer.getLong();
+		if (length != buffer.remaining() || crc != crc(buffer.slice())) {
+			return new TypeAnnotationsSnapshot();
+		}
+		TypeAnnotationsSnapshot result = new TypeAnnotationsSnapshot();
+		try {
+			result.index(buffer.slice());
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			return new TypeAnnotationsSnapshot();
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all classes known to this snapshot (restored or resolved) to file.
+	 * File is written under temporary name and atomically moved over the original one,
+	 * restored classes which have not been requested yet are then served from the written bytes.
+	 * The temporary file is created with default permissions (subject to umask) and takes over
+	 * permissions of the original file if there is one, so that the snapshot stays readable for other users.
+	 */
+	synchronized void save(Path file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Map<String,Class<?>> classes = resolved.keySet().stream().collect(Collectors.toMap(Class::getName, c -> c));
+		List<String> restoredOnly = index.keySet().stream().filter(name -> !classes.containsKey(name)).collect(Collectors.toList());
+		synchronized (annotations) {
+			out.writeInt(annotations.size());
+			for (String annotation : annotations) {
+				writeString(out, annotation);
+			}
+		}
+		out.writeInt(classes.size() + restoredOnly.size());
+		for (Class<?> c : classes.values()) {
+			ByteArrayOutputStream model = new ByteArrayOutputStream();
+			write(new DataOutputStream(model), resolved.get(c));
+			writeString(out, c.getName());
+			out.writeLong(fingerprint(c));
+			out.writeInt(model.size());
+			model.writeTo(out);
+		}
+		for (String className : restoredOnly) { // copied as is, not checked since they have not been requested
+			Entry entry = index.get(className);
+			byte[] model = new byte[entry.model.remaining()];
+			entry.model.duplicate().get(model);
+			writeString(out, className);
+			out.writeLong(entry.fingerprint);
+			out.writeInt(model.length);
+			out.write(model);
+		}
+		byte[] body = bytes.toByteArray();
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeInt(MAGIC);
+		headerOut.writeInt(VERSION);
+		headerOut.writeLong(classpathFingerprint());
+		headerOut.writeInt(body.length);
+		headerOut.writeLong(crc(ByteBuffer.wrap(body)));
+
+		Path temp = file.toAbsolutePath().resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			try (OutputStream target = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				header.writeTo(target);
+				target.write(body);
+			}
+			if (Files.exists(file)) {
+				try {
+					Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+				} catch (UnsupportedOperationException e) {
+					// not a POSIX file system, permissions are inherited from directory
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		index(ByteBuffer.wrap(body));
+		dirty = false;
+	}
+
+	/**
+	 * @return model of all members of given class, from snapshot if class is unchanged, otherwise resolved by reflection
+	 */
+	List<Member> members(Class<?> c) {
+		return resolved.computeIfAbsent(c, cc -> {
+			Entry entry = index.get(cc.getName());
+			if (entry != null && entry.fingerprint == fingerprint(cc)) {
+				try {
+					return read(entry.model.duplicate());
+				} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+					// unreadable model, resolve again
+				}
+			}
+			dirty = true;
+			return resolve(cc);
+		});
+	}
+
+	boolean isDirty() {
+		return dirty;
+	}
+
+	String annotation(int id) {
+		synchronized (annotations) {
+			return annotations.get(id);
+		}
+	}
+
+	// resolving by reflection
+
+	List<Member> resolve(Class<?> c) {
+		List<Member> result = new ArrayList<>();
+		Stream.of(c.getDeclaredFields()).filter(f -> !f.isSynthetic()).sorted(Comparator.comparing(Field::getName))
+				.forEach(f -> result.add(new Member(result.size(), f.getName(), levels(f.getAnnotatedType()))));
+		Stream.of(c.getDeclaredMethods()).filter(m -> !m.isSynthetic()).sorted(Comparator.comparing(Method::toString))
+				.forEach(m -> {
+					for (Parameter p : m.getParameters()) {
+						result.add(new Member(result.size(), m.getName() + "." + p.getName(), levels(p.getAnnotatedType())));
+					}
+				});
+		return result;
+	}
+
+	int[][] levels(AnnotatedType type) {
+		List<int[]> result = new ArrayList<>();
+		for (AnnotatedType level = type; level != null; level = TypeAnnotations.component(level)) {
+			result.add(Stream.of(level.getAnnotations()).map(Annotation::annotationType).mapToInt(a -> annotationId(a.getName())).toArray());
+		}
+		return result.toArray(new int[result.size()][]);
+	}
+
+	int annotationId(String annotation) {
+		synchronized (annotations) {
+			return annotationIds.computeIfAbsent(annotation, a -> {
+				annotations.add(a);
+				return annotations.size() - 1;
+			});
+		}
+	}
+
+	// fingerprints
+
+	static long crc(ByteBuffer bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	static long classpathFingerprint() {
+		CRC32 crc = new CRC32();
+		crc.update((System.getProperty("java.class.path") + "|" + System.getProperty("java.version")).getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	long fingerprint(Class<?> c) {
+		return fingerprints.computeIfAbsent(c, cc -> {
+			String resource = cc.getName().substring(cc.getName().lastIndexOf('.') + 1) + ".class";
+			try (InputStream in = cc.getResourceAsStream(resource)) {
+				if (in == null) {
+					return -1L; // never matches CRC, class is always resolved
+				}
+				CRC32 crc = new CRC32();
+				byte[] chunk = new byte[8192];
+				for (int n; (n = in.read(chunk)) != -1; ) {
+					crc.update(chunk, 0, n);
+				}
+				return crc.getValue();
+			} catch (IOException e) {
+				return -1L;
+			}
+		});
+	}
+
+	// binary model
+
+	static void write(DataOutputStream out, List<Member> members) throws IOException {
+		out.writeInt(members.size());
+		for (Member member : members) {
+			writeString(out, member.name);
+			out.writeShort(member.levels.length);
+			for (int[] level : member.levels) {
+				out.writeShort(level.length);
+				for (int id : level) {
+					out.writeInt(id);
+				}
+			}
+		}
+	}
+
+	static List<Member> read(ByteBuffer in) {
+		int n = in.getInt();
+		List<Member> result = new ArrayList<>(Math.min(n, in.remaining())); // count is not trusted for allocation
+		for (int i = 0; i < n; i++) {
+			String name = string(in);
+			int[][] levels = new int[in.getShort() & 0xFFFF][];
+			for (int l = 0; l < levels.length; l++) {
+				levels[l] = new int[in.getShort() & 0xFFFF];
+				for (int a = 0; a < levels[l].length; a++) {
+					levels[l][a] = in.getInt();
+				}
+			}
+			result.add(new Member(i, name, levels));
+		}
+		return result;
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	static String string(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// demo: first run resolves and writes snapshot, next runs restore it
+
+	public static void main(String[] args) throws Exception {
+		Path file = Paths.get(args.length > 0 ? args[0] : "TypeAnnotations.snapshot");
+		long start = System.nanoTime();
+		TypeAnnotationsSnapshot snapshot = restore(file);
+		List<Member> members = snapshot.members(TypeAnnotations.class);
+		long elapsed = System.nanoTime() - start;
+		for (Member member : members) {
+			System.out.println(member.index + " " + member.name + " " + Stream.of(member.levels)
+					.map(level -> level.length == 0 ? "annotationless" : Arrays.stream(level).mapToObj(id -> simpleName(snapshot.annotation(id))).collect(Collectors.joining(" ")))
+					.collect(Collectors.joining(" of ")));
+		}
+		System.out.println((snapshot.isDirty() ? "resolved" : "restored") + " in " + elapsed / 1000 + " us");
+		if (snapshot.isDirty()) {
+			snapshot.save(file);
+		}
+	}
+
+	static String simpleName(String annotation) {
+		return annotation.substring(Math.max(annotation.lastIndexOf('.'), annotation.lastIndexOf('$')) + 1);
+	}
+
+}
+
+/* OUTPUT (second run, first run prints "resolved"):
+
+0 ans annotationless of Nullable1
+1 as annotationless of annotationless
+2 lns annotationless of Nullable1
+3 ls annotationless of annotationless
+4 m annotationless
+5 nanans NullableC of Nullable1 of Nullable2
+6 nans NullableC of Nullable1
+7 nas NullableC of annotationless
+8 nlnlns NullableC of Nullable1 of Nullable2
+9 nlns NullableC of Nullable1
+10 nls NullableC of annotationless
+11 main.args annotationless of annotationless
+12 anno.type annotationless
+13 component.type annotationless
+14 parameterType.name annotationless
+15 field.name annotationless
+16 parameter.name annotationless
+17 m.lns annotationless of Nullable1
+18 m.ans annotationless of Nullable1
+19 m.nls NullableC of annotationless
+20 m.nas NullableC of annotationless
+21 m.nlns NullableC of Nullable1
+22 m.nans NullableC of Nullable1
+23 m.nlnlns NullableC of Nullable1 of Nullable2
+24 m.nanans NullableC of Nullable1 of Nullable2
+restored in 28242 us
+
+*/